@@ -5,11 +5,13 @@ import java.text.DecimalFormat;
 
 class DoubleScroller extends Panel implements AdjustmentListener {
 
-	double theValue, minValue, maxValue, stepSize;	// scrollbar parameters
+	volatile double theValue;		// current value, read from other threads
+	double minValue, maxValue, stepSize;	// scrollbar parameters
 	String labelText;				// explanatory text to display
 	Label theLabel;					// includes explanatory text and the numerical value
 	DecimalFormat labelFormat;		// format for displaying the value
 	Scrollbar theScrollbar;
+	AdjustmentListener valueListener;	// notified after each change of value
 
 	/** Construct a new DoubleScroller given the minimum value, maximum value, step size,
 	   initial value, and text label to display to the left of the current value. */
@@ -46,6 +48,13 @@ class DoubleScroller extends Panel implements AdjustmentListener {
 		int scaledValue = theScrollbar.getValue();
 		theValue = scaledValue * stepSize + minValue;
 		theLabel.setText(labelText + labelFormat.format(theValue));
+		if (valueListener != null) valueListener.adjustmentValueChanged(e);
+	}
+
+	/** Adds a listener to be notified whenever the user changes the value.  The new
+	   value is already available from getValue() when the listener is called. */
+	public void addAdjustmentListener(AdjustmentListener l) {
+		valueListener = AWTEventMulticaster.add(valueListener, l);
 	}
 
 	/** Returns the current value of the parameter when asked. */
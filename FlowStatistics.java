@@ -0,0 +1,100 @@
+import java.io.*;
+import java.util.Arrays;
+
+/*	Running time averages of the velocity field for a lattice-Boltzmann simulation.
+	Each cell keeps its means and sums of squared deviations, updated in place with
+	Welford's method, so no history of past frames needs to be stored.
+*/
+class FlowStatistics {
+
+	int xdim, ydim;			// dimensions of lattice; cell (x,y) is stored at index x*ydim+y
+	int samples = 0;		// number of samples in the current averages
+	double weight;			// 1/samples, so add() can multiply rather than divide
+	double[] meanU, meanV;	// running means of the x and y velocity
+	double[] m2U, m2V;		// running sums of squared deviations from the means
+	double[] cUV;			// running sum of products of x and y deviations
+
+	/** Construct empty statistics for a lattice of the given size. */
+	public FlowStatistics(int xdim, int ydim) {
+		this.xdim = xdim; this.ydim = ydim;
+		meanU = new double[xdim*ydim];
+		meanV = new double[xdim*ydim];
+		m2U = new double[xdim*ydim];
+		m2V = new double[xdim*ydim];
+		cUV = new double[xdim*ydim];
+	}
+
+	/** Returns an independent copy of the current averages, e.g. for saving on another thread. */
+	public FlowStatistics copy() {
+		FlowStatistics c = new FlowStatistics(xdim, ydim);
+		c.samples = samples;
+		c.weight = weight;
+		System.arraycopy(meanU, 0, c.meanU, 0, meanU.length);
+		System.arraycopy(meanV, 0, c.meanV, 0, meanV.length);
+		System.arraycopy(m2U, 0, c.m2U, 0, m2U.length);
+		System.arraycopy(m2V, 0, c.m2V, 0, m2V.length);
+		System.arraycopy(cUV, 0, c.cUV, 0, cUV.length);
+		return c;
+	}
+
+	/** Discards everything accumulated so far. */
+	public void reset() {
+		samples = 0;
+		Arrays.fill(meanU, 0); Arrays.fill(meanV, 0);
+		Arrays.fill(m2U, 0); Arrays.fill(m2V, 0); Arrays.fill(cUV, 0);
+	}
+
+	/** Starts a new sample.  Call once before the add() calls that make up the sample. */
+	public void beginSample() {
+		samples++;
+		weight = 1.0 / samples;
+	}
+
+	/** Adds the velocity (u,v) of the cell at index i to the current sample. */
+	public void add(int i, double u, double v) {
+		double du = u - meanU[i];
+		double dv = v - meanV[i];
+		meanU[i] += du * weight;
+		meanV[i] += dv * weight;
+		double dvNew = v - meanV[i];
+		m2U[i] += du * (u - meanU[i]);
+		m2V[i] += dv * dvNew;
+		cUV[i] += du * dvNew;
+	}
+
+	/** Returns the magnitude of the mean velocity at index i. */
+	public double meanSpeed(int i) {
+		return Math.sqrt(meanU[i]*meanU[i] + meanV[i]*meanV[i]);
+	}
+
+	/** Returns the RMS of the velocity fluctuations at index i, averaged over both components. */
+	public double rmsFluctuation(int i) {
+		return Math.sqrt(0.5 * (m2U[i] + m2V[i]) / samples);
+	}
+
+	/** Returns the Reynolds shear stress <u'v'> at index i (per unit density). */
+	public double reynoldsStress(int i) {
+		return cUV[i] / samples;
+	}
+
+	/** Writes the averages as comma-separated values, one line per fluid cell. */
+	public void write(File file, boolean[][] barrier) throws IOException {
+		if (samples == 0) throw new IOException("nothing has been averaged yet");
+		PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+		try {
+			out.println("# samples = " + samples);
+			out.println("x,y,meanU,meanV,rmsU,rmsV,uv");
+			for (int x=0; x<xdim; x++) {
+				for (int y=0; y<ydim; y++) {
+					if (barrier[x][y]) continue;
+					int i = x*ydim + y;
+					out.println(x + "," + y + "," + meanU[i] + "," + meanV[i] + ","
+						+ Math.sqrt(m2U[i]/samples) + "," + Math.sqrt(m2V[i]/samples) + "," + cUV[i]/samples);
+				}
+			}
+			if (out.checkError()) throw new IOException("error writing " + file);
+		} finally {
+			out.close();
+		}
+	}
+}
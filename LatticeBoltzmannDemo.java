@@ -1,7 +1,11 @@
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.MemoryImageSource;
+import java.io.File;
+import java.io.IOException;
 import java.text.DecimalFormat;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
 
 /*	A lattice-Boltzmann simulation in Java
 */
@@ -35,6 +39,10 @@ class LatticeBoltzmannDemo extends Canvas implements Runnable {
 
 	int time = 0;	// time in units of the fundamental step size
 
+	// Time-averaged flow statistics, sampled during collide() every statsInterval steps:
+	volatile FlowStatistics stats = null;	// null until averaging is switched on
+	int statsInterval = 10;
+
 	// Array of colors for graphics:
 	int nColors = 600;
 
@@ -53,7 +61,15 @@ class LatticeBoltzmannDemo extends Canvas implements Runnable {
 	Image theImage;
 	Image scaledImage;
 
-	boolean running = false;	// true when the simulation thread is running
+	volatile boolean running = false;	// true when the simulation thread is running
+	volatile boolean needsRepaint = true;	// true when the fluid or barriers have changed since the last frame
+	volatile boolean paintPending = false;	// true from a frame request until paint has finished
+	volatile boolean maxThroughput = false;	// true to step flat out, painting only as often as the display refreshes
+	int stepsPerFrame = 1;		// adjusted by run() so that steps plus painting fill the frame budget
+	double stepNanos = 0;		// smoothed time in ns for a single step
+	volatile double paintNanos = 0;	// smoothed time in ns for painting a frame
+	long displayFrameNanos = 1000000000L / 60;	// refresh interval of the screen in ns
+	Thread simThread;			// the thread that executes run()
 	int stepTime = 0;			// performance measure: time in ms for a single iteration of the algorithm
 	int collideTime = 0;
 	int streamTime = 0;
@@ -67,6 +83,20 @@ class LatticeBoltzmannDemo extends Canvas implements Runnable {
 	DoubleScroller viscScroller = new DoubleScroller("Viscosity = ",.01,1,.01,.02);
 	DoubleScroller speedScroller = new DoubleScroller("Flow speed = ",0,0.12,0.005,0.1);
 	DoubleScroller contrastScroller = new DoubleScroller("Contrast = ",1,100,1,20);
+	DoubleScroller fpsScroller = new DoubleScroller("Frame rate = ",5,60,1,30);
+	Checkbox maxSpeedBox = new Checkbox("Max speed");
+	Choice plotChoice = new Choice();
+	Checkbox averageBox = new Checkbox("Average");
+	Button saveButton = new Button("Save averages");
+	volatile String statusText = "";	// message shown in dataCanvas, e.g. the outcome of saving averages
+	DoubleScroller intervalScroller = new DoubleScroller("Sample every ",1,100,1,10);
+
+	// Solver copies of the physical settings, changed only between steps by queued commands:
+	double viscosity = viscScroller.getValue();
+	double flowSpeed = speedScroller.getValue();
+
+	// Edits from the GUI thread, waiting to be applied by the simulation thread between steps:
+	ConcurrentLinkedQueue<Runnable> commands = new ConcurrentLinkedQueue<Runnable>();
 
 	// calculation short-cuts:
 	double four9ths = 4.0 / 9;
@@ -80,7 +110,7 @@ class LatticeBoltzmannDemo extends Canvas implements Runnable {
 	
 		// Start the GUI with a Frame and a Panel to hold the Canvas:
 		setSize(xdim*pixelsPerSquare,ydim*pixelsPerSquare);
-		Frame theFrame = new Frame("Simulacion Lattice-Boltzmann");
+		final Frame theFrame = new Frame("Simulacion Lattice-Boltzmann");
 		theFrame.setResizable(false);
 		theFrame.addWindowListener(new WindowAdapter() { 
 			public void windowClosing(WindowEvent e) { 
@@ -101,6 +131,7 @@ class LatticeBoltzmannDemo extends Canvas implements Runnable {
 		controlPanel.setLayout(new GridLayout(0,1));	// divide controlPanel into equal-height rows
 		dataCanvas = new Canvas() {
 			public void paint(Graphics g) {
+				g.drawString(statusText, 5, getHeight()/2 + 5);
 			}
 		};
 		controlPanel.add(dataCanvas);
@@ -113,46 +144,66 @@ class LatticeBoltzmannDemo extends Canvas implements Runnable {
 			public void actionPerformed(ActionEvent e) {
 				running = !running;
 				if (running) runButton.setLabel("Pause"); else runButton.setLabel("Run");
+				LockSupport.unpark(simThread);	// wake the simulation thread if it is parked
 			}
 		});
 		Button resetButton = new Button("Reset fluid");
 		cPanel1.add(resetButton);
 		resetButton.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
-				initFluid();
-				repaint();
+				post(new Runnable() {
+					public void run() {
+						initFluid();
+					}
+				});
 			}
 		});
 		Button lineButton = new Button("Line");
 		cPanel1.add(lineButton);
 		lineButton.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
-				clearBarriers();
-				makeLine(20);
+				post(new Runnable() {
+					public void run() {
+						clearBarriers();
+						makeLine(20);
+					}
+				});
 			}
 		});
 		Button circleButton = new Button("Circle");
 		cPanel1.add(circleButton);
 		circleButton.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
-				clearBarriers();
-				makeCircle(20);
+				post(new Runnable() {
+					public void run() {
+						clearBarriers();
+						makeCircle(20);
+					}
+				});
 			}
 		});
 		Button rectangleButton = new Button("Rectangle");
 		cPanel1.add(rectangleButton);
 		rectangleButton.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
-				clearBarriers();
-				makeRectangle(20,20);
+				post(new Runnable() {
+					public void run() {
+						clearBarriers();
+						makeRectangle(20,20);
+					}
+				});
 			}
 		});
 		Button triangleButton = new Button("Triangle");
 		cPanel1.add(triangleButton);
 		triangleButton.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
-				clearBarriers();
-				makeTriangle(20);
+				post(new Runnable() {
+					public void run() {
+						clearBarriers();
+						makeTriangle(20);
+					}
+				});
 			}
 		});
 
@@ -160,8 +211,12 @@ class LatticeBoltzmannDemo extends Canvas implements Runnable {
 		cPanel1.add(airfoilButton);
 		airfoilButton.addActionListener(new ActionListener() {
 				public void actionPerformed(ActionEvent e) {
-						clearBarriers();
-						makeAirfoil(xdim / 4, ydim / 2, 100, 12); // Posición y dimensiones del ala
+						post(new Runnable() {
+								public void run() {
+										clearBarriers();
+										makeAirfoil(xdim / 4, ydim / 2, 100, 12); // Posición y dimensiones del ala
+								}
+						});
 				}
 		});
 
@@ -170,15 +225,23 @@ class LatticeBoltzmannDemo extends Canvas implements Runnable {
 		cPanel1.add(starButton);
 		starButton.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
-				clearBarriers();
-				makeStar(20);
+				post(new Runnable() {
+					public void run() {
+						clearBarriers();
+						makeStar(20);
+					}
+				});
 			}
 		});
 		Button clearButton = new Button("Clear barriers");
 		cPanel1.add(clearButton);
 		clearButton.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
-				clearBarriers();
+				post(new Runnable() {
+					public void run() {
+						clearBarriers();
+					}
+				});
 			}
 		});
 		
@@ -186,22 +249,125 @@ class LatticeBoltzmannDemo extends Canvas implements Runnable {
 		Panel cPanel2 = new Panel();
 		controlPanel.add(cPanel2);
 		cPanel2.add(viscScroller);
+		viscScroller.addAdjustmentListener(new AdjustmentListener() {
+			public void adjustmentValueChanged(AdjustmentEvent e) {
+				final double newViscosity = viscScroller.getValue();
+				post(new Runnable() {
+					public void run() {
+						viscosity = newViscosity;
+						resetStatistics();
+					}
+				});
+			}
+		});
 		cPanel2.add(speedScroller);
+		speedScroller.addAdjustmentListener(new AdjustmentListener() {
+			public void adjustmentValueChanged(AdjustmentEvent e) {
+				final double newSpeed = speedScroller.getValue();
+				post(new Runnable() {
+					public void run() {
+						flowSpeed = newSpeed;
+						resetStatistics();
+					}
+				});
+			}
+		});
+		cPanel2.add(fpsScroller);
+		cPanel2.add(maxSpeedBox);
+		maxSpeedBox.addItemListener(new ItemListener() {
+			public void itemStateChanged(ItemEvent e) {
+				maxThroughput = maxSpeedBox.getState();
+			}
+		});
+
+		// Sub-panel for plotting and averaging:
+		Panel cPanel3 = new Panel();
+		controlPanel.add(cPanel3);
+		cPanel3.add(new Label("Plot:"));
+		plotChoice.add("Curl");
+		plotChoice.add("Mean speed");
+		plotChoice.add("RMS fluctuation");
+		plotChoice.add("Reynolds stress");
+		cPanel3.add(plotChoice);
+		plotChoice.addItemListener(new ItemListener() {
+			public void itemStateChanged(ItemEvent e) {
+				repaint();
+			}
+		});
+		cPanel3.add(averageBox);
+		averageBox.addItemListener(new ItemListener() {
+			public void itemStateChanged(ItemEvent e) {
+				final boolean on = averageBox.getState();
+				post(new Runnable() {
+					public void run() {
+						stats = on ? new FlowStatistics(xdim,ydim) : null;
+					}
+				});
+				saveButton.setEnabled(on);
+			}
+		});
+		cPanel3.add(intervalScroller);
+		intervalScroller.addAdjustmentListener(new AdjustmentListener() {
+			public void adjustmentValueChanged(AdjustmentEvent e) {
+				final int newInterval = (int) Math.round(intervalScroller.getValue());
+				post(new Runnable() {
+					public void run() {
+						statsInterval = newInterval;	// samples at any spacing average the same flow
+					}
+				});
+			}
+		});
+		saveButton.setEnabled(false);		// nothing to save until averaging is switched on
+		cPanel3.add(saveButton);
+		saveButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				FileDialog dialog = new FileDialog(theFrame, "Save averages", FileDialog.SAVE);
+				dialog.setFile("averages.csv");
+				dialog.setVisible(true);
+				if (dialog.getFile() == null) return;	// user cancelled
+				final File file = new File(dialog.getDirectory(), dialog.getFile());
+				post(new Runnable() {		// copy between steps so the averages are consistent
+					public void run() {
+						if (stats == null) {
+							showStatus("Could not save averages: averaging is switched off");
+							return;
+						}
+						final FlowStatistics averages = stats.copy();
+						final boolean[][] walls = new boolean[xdim][];
+						for (int x=0; x<xdim; x++) walls[x] = barrier[x].clone();
+						new Thread() {		// and write the copy without holding up the simulation
+							public void run() {
+								try {
+									averages.write(file, walls);
+									showStatus("Saved " + averages.samples + " samples to " + file.getName());
+								} catch (IOException ex) {
+									showStatus("Could not save averages: " + ex.getMessage());
+								}
+							}
+						}.start();
+					}
+				});
+			}
+		});
 
 		// GUI is complete so pack the frame and show it:
 		theFrame.pack();
 		theFrame.setVisible(true);
+
+		// Frames in max-speed mode are paced by the screen's refresh rate, if it will tell us:
+		int refreshRate = theFrame.getGraphicsConfiguration().getDevice().getDisplayMode().getRefreshRate();
+		if (refreshRate != DisplayMode.REFRESH_RATE_UNKNOWN) displayFrameNanos = 1000000000L / refreshRate;
 		
 		makeLine(20);	// start with a linear barrier
 		
 		// Now start the simulation thread:
-		Thread simThread = new Thread(this);
+		simThread = new Thread(this);
 		simThread.start();
 	}	// end of constructor method
 
 	// Initialize the fluid with density 1 and user-chosen speed in x direction:
-	synchronized void initFluid() {
-		double v = speedScroller.getValue();
+	void initFluid() {
+		double v = flowSpeed;
 		for (int x=0; x<xdim; x++) {
 			for (int y=0; y<ydim; y++) {
 				if (barrier[x][y]) {
@@ -224,10 +390,22 @@ class LatticeBoltzmannDemo extends Canvas implements Runnable {
 			}
 		}
 		time = 0;	// reset time variable
+		resetStatistics();
+	}
+
+	// Show a message in the readout canvas (safe to call from any thread):
+	void showStatus(String message) {
+		statusText = message;
+		dataCanvas.repaint();
+	}
+
+	// Start the time averages afresh, since the flow they describe has changed:
+	void resetStatistics() {
+		if (stats != null) stats.reset();
 	}
 
 	// Clear all the user-drawn barriers:
-	synchronized void clearBarriers() {
+	void clearBarriers() {
 		for (int x=1; x<xdim-1; x++) {
 			for (int y=1; y<ydim-1; y++) {
 				if (barrier[x][y]) {
@@ -238,10 +416,11 @@ class LatticeBoltzmannDemo extends Canvas implements Runnable {
 				}
 			}
 		}
+		resetStatistics();
 	}
 
 	// Create a linear barrier of a given length:
-	synchronized void makeLine(int length) {
+	void makeLine(int length) {
 		mouseDrawBarrier = true;
 		int x = ydim/2 - 1;
 		for (int y=ydim/2-length/2-1; y<ydim/2-length/2+length-1; y++) {
@@ -249,7 +428,7 @@ class LatticeBoltzmannDemo extends Canvas implements Runnable {
 		}
 	}
 
-	synchronized void makeAirfoil(int centerX, int centerY, int length, int thickness) {
+	void makeAirfoil(int centerX, int centerY, int length, int thickness) {
     mouseDrawBarrier = true;
 
     // Parámetros del perfil NACA
@@ -288,7 +467,7 @@ class LatticeBoltzmannDemo extends Canvas implements Runnable {
 
 
 	// Create a circular barrier of given diameter:
-	synchronized void makeCircle(int diameter) {
+	void makeCircle(int diameter) {
 		mouseDrawBarrier = true;
 		double radius = (diameter-1)/2.0;		// 1->0, 2->.5, 3->1, 4->1.5, etc.
 		double centerY = ydim/2 - 1;
@@ -306,7 +485,7 @@ class LatticeBoltzmannDemo extends Canvas implements Runnable {
 		}
 	}
 
-	synchronized void makeRectangle(int width, int height) {
+	void makeRectangle(int width, int height) {
 		mouseDrawBarrier = true;
 		int startX = ydim/2 - width/2;
 		int startY = ydim/2 - height/2;
@@ -324,7 +503,7 @@ class LatticeBoltzmannDemo extends Canvas implements Runnable {
 		}
 	}
 
-	synchronized void makeTriangle(int size) {
+	void makeTriangle(int size) {
 		mouseDrawBarrier = true;
 		int centerX = ydim/2;
 		int centerY = ydim/2;
@@ -374,7 +553,7 @@ class LatticeBoltzmannDemo extends Canvas implements Runnable {
 	}
 
 
-	synchronized void makeStar(int size) {
+	void makeStar(int size) {
 		mouseDrawBarrier = true;
 		int centerX = ydim/2;
 		int centerY = ydim/2;
@@ -419,23 +598,88 @@ class LatticeBoltzmannDemo extends Canvas implements Runnable {
 		speed2[x][y] = 0;
 	}
 
-	// Run the simulation (called from separate thread):
+	// Run the simulation (called from separate thread).  Each pass through the loop is one frame:
+	// take as many steps as fit in the frame budget, ask for a repaint, then sleep out the rest of
+	// the frame.  In max-speed mode there is no sleeping; we step until the display is due for a
+	// new frame and has finished drawing the last one.  When paused, the thread parks until the
+	// Run button or a change to the fluid wakes it up.
 	public void run() {
+		long frameStart = System.nanoTime();
 		while (true) {
-			if (running) {
-				for (int s=0; s<10; s++) doStep();
-				try {Thread.sleep(1);} catch (InterruptedException e) {}
-				repaint();
+			if (!running) {
+				applyCommands();
+				if (needsRepaint) requestFrame();
+				LockSupport.park(this);
+				frameStart = System.nanoTime();
+				continue;
+			}
+			long frameNanos = maxThroughput ? displayFrameNanos : (long) (1e9 / fpsScroller.getValue());
+			long stepStart = System.nanoTime();
+			long commandNanos = 0;		// time spent on queued edits, left out of the step timing
+			int steps = 0;
+			if (maxThroughput) {
+				do {
+					commandNanos += applyCommands();
+					doStep();
+					steps++;
+				} while (running && (System.nanoTime() - frameStart < frameNanos || (paintPending && isShowing())));
 			} else {
-				try {Thread.sleep(200);} catch (InterruptedException e) {}
+				for (; steps<stepsPerFrame; steps++) {
+					commandNanos += applyCommands();
+					doStep();
+				}
 			}
-			repaint();	// repeated painting when not running uses resources but is handy for graphics adjustments
+			long now = System.nanoTime();
+			stepNanos = smooth(stepNanos, (now - stepStart - commandNanos) / (double) steps);
+			requestFrame();
+			if (!maxThroughput) {
+				// Fill next frame's budget with steps, but don't more than double the count at once:
+				double budget = frameNanos - paintNanos;
+				stepsPerFrame = (int) Math.max(1, Math.min(2*stepsPerFrame, budget / stepNanos));
+				long frameEnd = frameStart + frameNanos;
+				while ((now = System.nanoTime()) < frameEnd) LockSupport.parkNanos(this, frameEnd - now);
+			}
+			frameStart = now;	// if we fell behind, start afresh rather than trying to catch up
 		}
 	}
 
+	// Ask AWT to paint a new frame:
+	void requestFrame() {
+		needsRepaint = false;
+		paintPending = true;
+		repaint();
+		dataCanvas.repaint();
+	}
+
+	// Queue an edit for the simulation thread, waking it in case it is paused.  This is the only
+	// way for other threads to change the fluid, barriers, or physical settings:
+	void post(Runnable command) {
+		commands.add(command);
+		LockSupport.unpark(simThread);
+	}
+
+	// Apply any queued edits (called from the simulation thread between steps), returning the
+	// time in ns this took so that run() can leave it out of the step timing:
+	long applyCommands() {
+		Runnable command = commands.poll();
+		if (command == null) return 0;
+		long startTime = System.nanoTime();
+		do {
+			command.run();
+		} while ((command = commands.poll()) != null);
+		needsRepaint = true;
+		return System.nanoTime() - startTime;
+	}
+
+	// Exponential moving average used for the step and paint timings:
+	static double smooth(double average, double sample) {
+		if (average == 0) return sample;
+		return average + 0.2 * (sample - average);
+	}
+
 	// Execute a single step of the algorithm:
 	// Times are on 3.06 GHz iMac, Java 6. On 2.4GHz MacBook Pro, all times are about 30% longer.
-	synchronized void doStep() {
+	void doStep() {
 		long startTime = System.currentTimeMillis();
 		//force();
 		long forceTime = System.currentTimeMillis();
@@ -447,13 +691,17 @@ class LatticeBoltzmannDemo extends Canvas implements Runnable {
 		bounce();
 		stepTime = (int) (System.currentTimeMillis() - startTime);	// 33-35 ms for 600x600 grid
 		time++;
-		dataCanvas.repaint();
 	}
 
 	// Collide particles within each cell.  Adapted from Wagner's D2Q9 code.
 	void collide() {
 		double n, one9thn, one36thn, vx, vy, vx2, vy2, vx3, vy3, vxvy2, v2, v215;
-		double omega = 1 / (3*viscScroller.getValue() + 0.5);	// reciprocal of tau, the relaxation time
+		double omega = 1 / (3*viscosity + 0.5);	// reciprocal of tau, the relaxation time
+		FlowStatistics sample = null;	// averages to update with this step's velocities, if any
+		if (stats != null && time % statsInterval == 0) {
+			sample = stats;
+			sample.beginSample();
+		}
 		for (int x=0; x<xdim; x++) {
 			for (int y=0; y<ydim; y++) {
 				if (!barrier[x][y]) {
@@ -476,6 +724,7 @@ class LatticeBoltzmannDemo extends Canvas implements Runnable {
 					vxvy2 = 2 * vx * vy;
 					v2 = vx2 + vy2;
 					speed2[x][y] = v2;		// may be needed for plotting
+					if (sample != null) sample.add(x*ydim + y, vx, vy);
 					v215 = 1.5 * v2;
 					n0[x][y]  += omega * (four9ths*n * (1                              - v215) - n0[x][y]);
 					nE[x][y]  += omega * (   one9thn * (1 + vx3       + 4.5*vx2        - v215) - nE[x][y]);
@@ -527,7 +776,7 @@ class LatticeBoltzmannDemo extends Canvas implements Runnable {
 		// Now handle left boundary as in Pullan's example code:
 		// Stream particles in from the non-existent space to the left, with the
 		// user-determined speed:
-		double v = speedScroller.getValue();
+		double v = flowSpeed;
 		for (int y=0; y<ydim; y++) {
 			if (!barrier[0][y]) {
 				nE[0][y] = one9th * (1 + 3*v + 3*v*v);
@@ -607,9 +856,12 @@ class LatticeBoltzmannDemo extends Canvas implements Runnable {
 
 	// Paint method draws everything:
 	public void paint(Graphics g) {
-		long startTime = System.currentTimeMillis();
-		computeCurl();
+		long startTime = System.nanoTime();
 		double contrast = 20.0;	// multiplicative factor for colors
+		FlowStatistics averages = stats;
+		int plotType = plotChoice.getSelectedIndex();	// 0 for curl, otherwise a time average
+		if (averages == null || averages.samples == 0) plotType = 0;	// nothing averaged yet
+		if (plotType == 0) computeCurl();
 		int colorIndex;	// index into array of colors
 		int theColor;	// color of a square, stored as an integer
 		int pIndex = 0;	// index into pixel array
@@ -618,7 +870,16 @@ class LatticeBoltzmannDemo extends Canvas implements Runnable {
 				if (barrier[x][y]) {
 					theColor = blackColorInt;
 				} else {
-					colorIndex = (int) (nColors * (0.5 + curl[x][y] * contrast * 0.3));
+					int i = x*ydim + y;
+					if (plotType == 1) {
+						colorIndex = (int) (nColors * averages.meanSpeed(i) * contrast * 0.3);
+					} else if (plotType == 2) {
+						colorIndex = (int) (nColors * averages.rmsFluctuation(i) * contrast);
+					} else if (plotType == 3) {
+						colorIndex = (int) (nColors * (0.5 + averages.reynoldsStress(i) * contrast * 10));
+					} else {
+						colorIndex = (int) (nColors * (0.5 + curl[x][y] * contrast * 0.3));
+					}
 
 					if (colorIndex < 0) colorIndex = 0;
 					if (colorIndex >= nColors) colorIndex = nColors - 1;
@@ -642,7 +903,10 @@ class LatticeBoltzmannDemo extends Canvas implements Runnable {
 		iSource.newPixels(0,0,xdim*pixelsPerSquare,ydim*pixelsPerSquare);	// inform AWT that memory image has changed
 		g.drawImage(theImage,0,0,null);		// blast the image to the screen
 		
-		paintTime = (int) (System.currentTimeMillis() - startTime);
+		long elapsed = System.nanoTime() - startTime;
+		paintTime = (int) (elapsed / 1000000);
+		paintNanos = smooth(paintNanos, elapsed);
+		paintPending = false;
 	}	// end of paint method
 
 	// A grid point has been clicked or dragged; create or erase a barrier accordingly:
@@ -658,7 +922,6 @@ class LatticeBoltzmannDemo extends Canvas implements Runnable {
 				speed2[x][y] = 0;	// paint method needs to know that speed is zero
 			}
 		}
-		repaint();
 	}
 
 	// Boring main method to get things started: